@@ -0,0 +1,205 @@
+package com.automation.voice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.springframework.core.env.StandardEnvironment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Allocation Budget check for the Voice Automation Hub backend
+ *
+ * Calls the handlers behind /api/interpret, /api/execute, /api/devices and /api/history in-process,
+ * measures the bytes allocated per call after warm-up, and compares them with the budgets in
+ * allocation-budgets.properties. Allocation is summed over all threads, so the work /api/execute
+ * hands to the device mailboxes is included. Each path is measured in several rounds and the
+ * lowest round counts, which keeps background threads from failing the check.
+ *
+ * Exits with status 1 if a path is over its budget, so "./mvnw verify" fails the
+ * build. After an intended change, --record rewrites the file from the measured values plus
+ * headroom.
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.AllocationBudget --budget=allocation-budgets.properties
+ *
+ * Options: --budget=allocation-budgets.properties, --iterations=20000, --rounds=5, --record=false,
+ * --headroom=1.25
+ */
+public class AllocationBudget {
+
+    static final String[] PATHS = {"interpret", "execute", "devices", "history"};
+
+    private static final String[][] COMMANDS = {
+        {"living room light", "ON", null}, {"living room light", "DIM", null}, {"bedroom light", "SET", "40"},
+        {"thermostat", "SET", "70"}, {"thermostat", "INCREASE", null}, {"fan", "ON", null},
+        {"door lock", "LOCK", null}, {"fan", "OFF", null}, {"door lock", "UNLOCK", null},
+        {"living room light", "OFF", null},
+    };
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final App app;
+    private final List<Map<String, String>> interpretRequests = new ArrayList<>();
+    private final List<Map<String, String>> executeRequests = new ArrayList<>();
+    private int next = 0;
+
+    AllocationBudget() {
+        // No schedule log, and commands go straight to the mailboxes instead of waiting out a coalescing window
+        System.setProperty("voicehub.schedule.file", "");
+        System.setProperty("voicehub.coalesce.window-ms", "0");
+        app = new App(new StandardEnvironment());
+        for (String utterance : InterpretBenchmark.UTTERANCES) {
+            Map<String, String> req = new HashMap<>();
+            req.put("command", utterance);
+            interpretRequests.add(req);
+        }
+        for (String[] command : COMMANDS) {
+            Map<String, String> req = new HashMap<>();
+            req.put("device", command[0]);
+            req.put("action", command[1]);
+            if (command[2] != null) {
+                req.put("parameter", command[2]);
+            }
+            executeRequests.add(req);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        Path budgetFile = Paths.get(options.getOrDefault("budget", "allocation-budgets.properties"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "20000"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "5"));
+        boolean record = Boolean.parseBoolean(options.getOrDefault("record", "false"));
+        double headroom = Double.parseDouble(options.getOrDefault("headroom", "1.25"));
+
+        AllocationBudget check = new AllocationBudget();
+        if (!(check.threads instanceof com.sun.management.ThreadMXBean)) {
+            System.err.println("❌ This JVM does not report per-thread allocation; cannot check budgets");
+            System.exit(2);
+        }
+        Properties budgets = new Properties();
+        if (Files.exists(budgetFile)) {
+            try (InputStream in = Files.newInputStream(budgetFile)) {
+                budgets.load(in);
+            }
+        } else if (!record) {
+            System.err.println("❌ Budget file not found: " + budgetFile.toAbsolutePath());
+            System.exit(2);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("iterations", iterations);
+        Map<String, Object> paths = new LinkedHashMap<>();
+        boolean over = false;
+        Properties recorded = new Properties();
+        PrintStream console = System.out;
+        for (String path : PATHS) {
+            // The handlers log every request; the log lines are still built (and counted), just not printed
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long measured;
+            try {
+                measured = check.measure(check.call(path), iterations, rounds);
+            } finally {
+                System.setOut(console);
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("bytesPerCall", measured);
+            String budget = budgets.getProperty(path);
+            if (budget != null) {
+                long limit = Long.parseLong(budget.trim());
+                result.put("budget", limit);
+                result.put("withinBudget", measured <= limit);
+                over |= measured > limit;
+            }
+            recorded.setProperty(path, Long.toString((long) Math.ceil(measured * headroom / 50.0) * 50));
+            paths.put(path, result);
+        }
+        report.put("paths", paths);
+        System.out.println(new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report));
+
+        if (record) {
+            write(budgetFile, recorded, headroom);
+            System.out.println("Budgets recorded to " + budgetFile + " (measured x " + headroom + ")");
+        } else if (over) {
+            System.err.println("❌ Allocation over budget; see the paths with \"withinBudget\" : false above");
+            System.exit(1);
+        } else {
+            System.out.println("✅ All paths within their allocation budgets");
+        }
+        System.exit(0); // the app's worker threads would keep the JVM alive
+    }
+
+    private Runnable call(String path) {
+        switch (path) {
+            case "interpret":
+                return () -> app.interpret(interpretRequests.get(next++ % interpretRequests.size()), null, null);
+            case "execute":
+                return () -> app.execute(executeRequests.get(next++ % executeRequests.size()), null, null, null).join();
+            case "devices":
+                return () -> app.getDevices(null, null);
+            default:
+                return () -> app.getHistory(null, null);
+        }
+    }
+
+    private long measure(Runnable call, int iterations, int rounds) {
+        for (int i = 0; i < iterations; i++) {
+            call.run(); // warm-up
+        }
+        long lowest = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                call.run();
+            }
+            lowest = Math.min(lowest, (allocatedBytes() - before) / iterations);
+        }
+        return lowest;
+    }
+
+    /** Bytes allocated so far by all live threads. */
+    private long allocatedBytes() {
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+        long total = 0;
+        for (long bytes : sun.getThreadAllocatedBytes(sun.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static void write(Path file, Properties budgets, double headroom) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("# Bytes allocated per call, checked by AllocationBudget (./mvnw verify).\n");
+        text.append("# Recorded from a measurement x ").append(headroom)
+            .append("; raise a budget only together with the change that needs it.\n");
+        for (String path : PATHS) {
+            text.append(path).append('=').append(budgets.getProperty(path)).append('\n');
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(text.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Automation Benchmark for the Voice Automation Hub backend
+ *
+ * Measures, in-process and on one thread, what finding the automation rules affected by one device
+ * state change costs as the number of rules grows:
+ *   indexed   the engine's lookup by device, attribute and threshold range
+ *   scan      checking every rule's condition against the change (the cost without an index)
+ * Rules and state changes are random but seeded, so both see the same work; firing is not part
+ * of the measurement.
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.AutomationBenchmark --rules=100,1000,10000
+ *
+ * Options: --rules=100,1000,10000, --duration=3 (seconds per measurement), --out=file.json
+ */
+public class AutomationBenchmark {
+
+    private static final String[] DEVICES = {
+        "living room light", "bedroom light", "kitchen light", "thermostat", "fan", "door lock"
+    };
+    private static final int CHANGES = 4096;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String[] changedDevice = new String[CHANGES];
+    private final App.DeviceState.Values[] before = new App.DeviceState.Values[CHANGES];
+    private final App.DeviceState.Values[] after = new App.DeviceState.Values[CHANGES];
+    private long sink = 0;
+
+    AutomationBenchmark() {
+        Random random = new Random(44);
+        for (int i = 0; i < CHANGES; i++) {
+            changedDevice[i] = DEVICES[random.nextInt(DEVICES.length)];
+            boolean on = random.nextBoolean();
+            int brightness = random.nextInt(101);
+            int temperature = 60 + random.nextInt(26);
+            before[i] = new App.DeviceState.Values(on, brightness, temperature, i);
+            switch (random.nextInt(3)) {
+                case 0:
+                    after[i] = before[i].withOn(!on);
+                    break;
+                case 1:
+                    after[i] = before[i].withBrightness(brightness + random.nextInt(41) - 20);
+                    break;
+                default:
+                    after[i] = before[i].withTemperature(temperature + random.nextInt(5) - 2);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "3")));
+
+        AutomationBenchmark benchmark = new AutomationBenchmark();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String count : options.getOrDefault("rules", "100,1000,10000").split(",")) {
+            results.add(benchmark.measure(Integer.parseInt(count.trim()), durationNanos));
+        }
+        report.put("results", results);
+
+        if (options.containsKey("out")) {
+            benchmark.mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Automation report written to " + options.get("out"));
+        } else {
+            System.out.println(benchmark.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+    }
+
+    private Map<String, Object> measure(int ruleCount, long durationNanos) {
+        App.AutomationEngine engine = new App.AutomationEngine(null, ZoneId.systemDefault());
+        List<App.AutomationRule> rules = new ArrayList<>(ruleCount);
+        Random random = new Random(ruleCount);
+        App.AutomationRule.Attribute[] attributes = App.AutomationRule.Attribute.values();
+        App.AutomationRule.Operator[] operators = App.AutomationRule.Operator.values();
+        App.DeviceCommandExpression action = new App.DeviceCommandExpression("fan", "ON", null);
+        for (int i = 0; i < ruleCount; i++) {
+            App.AutomationRule.Attribute attribute = attributes[random.nextInt(attributes.length)];
+            int value = (attribute == App.AutomationRule.Attribute.ON) ? random.nextInt(2)
+                : (attribute == App.AutomationRule.Attribute.BRIGHTNESS) ? random.nextInt(101) : 60 + random.nextInt(26);
+            rules.add(engine.add(new App.AutomationRule(null, DEVICES[random.nextInt(DEVICES.length)], attribute,
+                operators[random.nextInt(operators.length)], value, null, null, action)));
+        }
+
+        long matched = 0;
+        for (int i = 0; i < CHANGES; i++) {
+            matched += engine.matching(changedDevice[i], before[i], after[i]).size();
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rules", ruleCount);
+        result.put("matchesPerChange", Math.round(100.0 * matched / CHANGES) / 100.0);
+        result.put("indexedNanosPerChange", time(i -> engine.matching(changedDevice[i], before[i], after[i]).size(), durationNanos));
+        result.put("scanNanosPerChange", time(i -> scan(rules, i), durationNanos));
+        return result;
+    }
+
+    private int scan(List<App.AutomationRule> rules, int i) {
+        int matches = 0;
+        for (App.AutomationRule rule : rules) {
+            if (rule.device.equals(changedDevice[i]) && rule.becameTrue(before[i], after[i])) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private double time(IntUnaryOperator change, long durationNanos) {
+        run(change, TimeUnit.SECONDS.toNanos(1)); // warm-up
+        long started = System.nanoTime();
+        long runs = run(change, durationNanos);
+        return Math.round(10.0 * (System.nanoTime() - started) / runs) / 10.0;
+    }
+
+    private long run(IntUnaryOperator change, long durationNanos) {
+        long runs = 0;
+        long started = System.nanoTime();
+        while (System.nanoTime() - started < durationNanos) {
+            for (int i = 0; i < CHANGES; i++) {
+                sink += change.applyAsInt(i);
+            }
+            runs += CHANGES;
+        }
+        return runs;
+    }
+}
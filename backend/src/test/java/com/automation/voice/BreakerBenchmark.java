@@ -0,0 +1,123 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Breaker Benchmark for the Voice Automation Hub backend
+ *
+ * Runs commands through the real executor against the local fake device driver
+ * ({@link App.FaultyDeviceDriver}) with faults injected on demand, one command after another as
+ * a device mailbox would, and reports how long each command held its worker and how many got
+ * through:
+ *   healthy       no fault
+ *   offline       the device never answers; with the breaker off every command waits out the
+ *                 timeout (and its retries), with it on the breaker opens and commands fail fast
+ *   flaky         30% of calls fail; ON/OFF with and without retries (breaker off)
+ *   slow-tail     4% of calls take --slow-ms; ON/OFF with and without hedging
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.BreakerBenchmark --commands=100
+ *
+ * Options: --commands=100 (per scenario), --timeout-ms=100, --slow-ms=100, --out=file.json
+ */
+public class BreakerBenchmark {
+
+    private static final String DEVICE = "living room light";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final App.CommandExecutorVisitor executor = new App.CommandExecutorVisitor();
+    private final int commands;
+    private final long timeoutMillis;
+    private final long slowMillis;
+
+    BreakerBenchmark(int commands, long timeoutMillis, long slowMillis) {
+        this.commands = commands;
+        this.timeoutMillis = timeoutMillis;
+        this.slowMillis = slowMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        BreakerBenchmark benchmark = new BreakerBenchmark(
+            Integer.parseInt(options.getOrDefault("commands", "100")),
+            Long.parseLong(options.getOrDefault("timeout-ms", "100")),
+            Long.parseLong(options.getOrDefault("slow-ms", "100")));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("commandsPerScenario", benchmark.commands);
+        report.put("timeoutMillis", benchmark.timeoutMillis);
+        Map<String, Object> scenarios = new LinkedHashMap<>();
+        // Executed commands are logged by the visitor; keep the report readable
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            scenarios.put("healthy", benchmark.run(null, 2, false, true));
+            App.FaultyDeviceDriver.Fault offline = new App.FaultyDeviceDriver.Fault(0, 0, 0, true);
+            scenarios.put("offline-no-breaker", benchmark.run(offline, 2, false, false));
+            scenarios.put("offline", benchmark.run(offline, 2, false, true));
+            App.FaultyDeviceDriver.Fault flaky = new App.FaultyDeviceDriver.Fault(0.3, 0, 1, false);
+            scenarios.put("flaky-no-retries", benchmark.run(flaky, 0, false, false));
+            scenarios.put("flaky", benchmark.run(flaky, 2, false, false));
+            App.FaultyDeviceDriver.Fault slowTail = new App.FaultyDeviceDriver.Fault(0, benchmark.slowMillis, 0.04, false);
+            scenarios.put("slow-tail", benchmark.run(slowTail, 2, false, true));
+            scenarios.put("slow-tail-hedged", benchmark.run(slowTail, 2, true, true));
+        } finally {
+            System.setOut(console);
+        }
+        report.put("scenarios", scenarios);
+
+        if (options.containsKey("out")) {
+            benchmark.mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Breaker report written to " + options.get("out"));
+        } else {
+            System.out.println(benchmark.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+    }
+
+    private Map<String, Object> run(App.FaultyDeviceDriver.Fault fault, int retries, boolean hedge, boolean breaker) {
+        App.FaultyDeviceDriver driver = new App.FaultyDeviceDriver();
+        if (fault != null) {
+            driver.inject(DEVICE, fault);
+        }
+        // A failure rate above 1 never opens the breaker
+        App.DeviceCalls calls = new App.DeviceCalls(driver, timeoutMillis, retries, 5, hedge, 20, breaker ? 0.5 : 2.0, 60000);
+        App.DeviceCalls.use(calls);
+
+        App.DeviceMailboxes.LatencyHistogram micros = new App.DeviceMailboxes.LatencyHistogram();
+        int succeeded = 0;
+        long totalNanos = 0;
+        for (int i = 0; i < commands; i++) {
+            App.DeviceCommandExpression cmd = new App.DeviceCommandExpression(DEVICE, (i % 2 == 0) ? "ON" : "OFF", null);
+            long started = System.nanoTime();
+            App.ExecutionResult result = executor.visit(cmd);
+            long elapsed = System.nanoTime() - started;
+            totalNanos += elapsed;
+            micros.record(elapsed / 1000);
+            succeeded += result.success ? 1 : 0;
+        }
+        App.DeviceCalls.use(new App.DeviceCalls(new App.VirtualDeviceDriver(), 2000, 2, 50, false, 20, 0.5, 5000));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("succeeded", succeeded);
+        result.put("failed", commands - succeeded);
+        result.put("totalMillis", Math.round(totalNanos / 1e5) / 10.0);
+        result.put("commandMicros", micros.summary());
+        result.put("breaker", calls.breakers().get(DEVICE));
+        result.put("rejected", calls.rejected().getOrDefault(DEVICE, 0L));
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Contention Benchmark for the Voice Automation Hub backend
+ *
+ * Runs the command executor in-process against a single hot device (the thermostat) and measures
+ * conditional writes, the way two dashboards racing on the same device would issue them: each
+ * writer reads the current version, then sends a SET with that version as the expected one, and
+ * re-reads and retries when it loses. Reader threads take snapshots at the same time.
+ *
+ * Every successful conditional write must have been made against a distinct version, and together
+ * they must cover the version range without gaps, ending at the device's final version; otherwise
+ * an update was lost or applied twice and the run fails with exit code 1.
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.ContentionBenchmark --threads=1,2,4,8
+ *
+ * Options: --threads=1,2,4,8, --readers=2, --duration=5 (seconds per thread count), --out=file.json
+ */
+public class ContentionBenchmark {
+
+    private static final String DEVICE = "thermostat";
+
+    private final App.CommandExecutorVisitor executor = new App.CommandExecutorVisitor();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int readers = Integer.parseInt(options.getOrDefault("readers", "2"));
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "5")));
+
+        ContentionBenchmark benchmark = new ContentionBenchmark();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        report.put("readers", readers);
+        report.put("durationMillis", durationMillis);
+        Map<String, Object> results = new LinkedHashMap<>();
+        boolean consistent = true;
+        for (String threads : options.getOrDefault("threads", "1,2,4,8").split(",")) {
+            Map<String, Object> result = benchmark.run(Integer.parseInt(threads.trim()), readers, durationMillis);
+            consistent &= Boolean.TRUE.equals(result.get("noLostUpdates"));
+            results.put(threads.trim() + "-writers", result);
+        }
+        report.put("results", results);
+
+        ObjectMapper mapper = new ObjectMapper();
+        if (options.containsKey("out")) {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Contention report written to " + options.get("out"));
+        } else {
+            System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+        if (!consistent) {
+            System.err.println("Lost or duplicated updates detected");
+            System.exit(1);
+        }
+    }
+
+    private Map<String, Object> run(int writers, int readers, long durationMillis) throws InterruptedException {
+        App.DeviceState state = App.DeviceStateManager.getState(DEVICE);
+        long initialVersion = state.getVersion();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong conflicts = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        AtomicLong readAnomalies = new AtomicLong();
+        List<List<Long>> appliedVersions = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < writers; i++) {
+            List<Long> applied = new ArrayList<>();
+            appliedVersions.add(applied);
+            threads.add(new Thread(() -> {
+                await(start);
+                while (running.get()) {
+                    App.DeviceState.Values seen = state.values();
+                    // Always a real change, so a successful write must bump the version
+                    int target = (seen.temperature >= 85) ? 60 : seen.temperature + 1;
+                    App.ExecutionResult result = executor.visit(
+                        new App.DeviceCommandExpression(DEVICE, "SET", String.valueOf(target)), seen.version);
+                    if (result.success) {
+                        applied.add(seen.version);
+                    } else if (result.versionMismatch) {
+                        conflicts.incrementAndGet();
+                    } else {
+                        throw new IllegalStateException("Conditional write failed: " + result.message);
+                    }
+                }
+            }, "writer-" + i));
+        }
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                long lastVersion = -1;
+                while (running.get()) {
+                    App.DeviceState.Values seen = state.values();
+                    if (seen.version < lastVersion || seen.temperature < 60 || seen.temperature > 85) {
+                        readAnomalies.incrementAndGet();
+                    }
+                    lastVersion = seen.version;
+                    reads.incrementAndGet();
+                }
+            }, "reader-" + i));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        Thread.sleep(durationMillis);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        List<Long> versions = new ArrayList<>();
+        for (List<Long> applied : appliedVersions) {
+            versions.addAll(applied);
+        }
+        Collections.sort(versions);
+        boolean contiguous = true;
+        for (int i = 0; i < versions.size(); i++) {
+            if (versions.get(i) != initialVersion + i) {
+                contiguous = false;
+                break;
+            }
+        }
+        long successes = versions.size();
+        long finalVersion = state.getVersion();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("writers", writers);
+        result.put("successfulWrites", successes);
+        result.put("conflicts", conflicts.get());
+        result.put("conflictRate", (successes + conflicts.get() == 0) ? 0.0
+            : Math.round(10000.0 * conflicts.get() / (successes + conflicts.get())) / 10000.0);
+        result.put("writesPerSecond", Math.round(successes / seconds));
+        result.put("attemptsPerSecond", Math.round((successes + conflicts.get()) / seconds));
+        result.put("readsPerSecond", Math.round(reads.get() / seconds));
+        result.put("initialVersion", initialVersion);
+        result.put("finalVersion", finalVersion);
+        result.put("readAnomalies", readAnomalies.get());
+        result.put("noLostUpdates", contiguous && finalVersion == initialVersion + successes && readAnomalies.get() == 0);
+        return result;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
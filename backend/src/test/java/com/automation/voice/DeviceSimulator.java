@@ -0,0 +1,532 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Device Simulator for the Voice Automation Hub backend
+ *
+ * Runs a command load through the real {@link App.DeviceMailboxes}, executor and device states
+ * against simulated devices on a virtual clock, so hours of traffic over thousands of devices take
+ * seconds and the same seed always gives the same run:
+ *   - commands arrive as a Poisson stream at --rate per second, for random devices and actions,
+ *     and are told to the mailboxes (--workers workers, --capacity commands per device)
+ *   - the executor reaches the devices through {@link App.DeviceCalls} with a virtual-clock
+ *     {@link App.DeviceDriver}: each device type has a lognormal latency, a failure rate and a
+ *     timeout, and a call is answered when the virtual clock gets there
+ *   - thermostats drift: every virtual minute each one's simulated room temperature moves part
+ *     of the way to the setpoint in its {@link App.DeviceState}, with some noise
+ * The clock only moves on once every worker is waiting for a device or for work, so the mailboxes
+ * see the same interleaving on every run. For that every command uses one lane (priority lanes
+ * off), and the device calls neither retry nor open breakers, both of which run on the wall clock.
+ * Latency is measured in virtual time from arrival to completion, queueing included.
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.DeviceSimulator --devices=2000 --hours=4
+ *
+ * Options: --seed=1, --devices=2000, --hours=4, --rate=50 (commands per second), --workers=16,
+ * --capacity=64, --overflow=reject, --latency-scale=1.0, --failure-scale=1.0, --out=file.json
+ */
+public class DeviceSimulator {
+
+    /** Latency (lognormal around the median), failure rate and timeout for one kind of device. */
+    enum DeviceType {
+        LIGHT("light", 40, 0.5, 0.005, 2000, 60),
+        THERMOSTAT("thermostat", 250, 0.8, 0.01, 5000, 15),
+        FAN("fan", 60, 0.5, 0.005, 2000, 15),
+        LOCK("lock", 400, 1.0, 0.02, 5000, 10);
+
+        final String label;
+        final double medianMillis;
+        final double sigma;
+        final double failureRate;
+        final long timeoutMillis;
+        final int sharePercent; // of the simulated devices
+
+        DeviceType(String label, double medianMillis, double sigma, double failureRate, long timeoutMillis, int sharePercent) {
+            this.label = label;
+            this.medianMillis = medianMillis;
+            this.sigma = sigma;
+            this.failureRate = failureRate;
+            this.timeoutMillis = timeoutMillis;
+            this.sharePercent = sharePercent;
+        }
+    }
+
+    /** What to simulate; defaults match the usage line above. */
+    static final class Scenario {
+        long seed = 1;
+        int devices = 2000;
+        double hours = 4;
+        double commandsPerSecond = 50;
+        int workers = 16;
+        int capacity = 64;
+        App.DeviceMailboxes.OverflowPolicy overflow = App.DeviceMailboxes.OverflowPolicy.REJECT;
+        double latencyScale = 1.0;
+        double failureScale = 1.0;
+
+        static Scenario from(Map<String, String> options) {
+            Scenario scenario = new Scenario();
+            scenario.seed = Long.parseLong(options.getOrDefault("seed", "1"));
+            scenario.devices = Integer.parseInt(options.getOrDefault("devices", "2000"));
+            scenario.hours = Double.parseDouble(options.getOrDefault("hours", "4"));
+            scenario.commandsPerSecond = Double.parseDouble(options.getOrDefault("rate", "50"));
+            scenario.workers = Integer.parseInt(options.getOrDefault("workers", "16"));
+            scenario.capacity = Integer.parseInt(options.getOrDefault("capacity", "64"));
+            scenario.overflow = App.DeviceMailboxes.OverflowPolicy.parse(options.getOrDefault("overflow", "reject"));
+            scenario.latencyScale = Double.parseDouble(options.getOrDefault("latency-scale", "1.0"));
+            scenario.failureScale = Double.parseDouble(options.getOrDefault("failure-scale", "1.0"));
+            return scenario;
+        }
+
+        Map<String, Object> describe() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("seed", seed);
+            map.put("devices", devices);
+            map.put("hours", hours);
+            map.put("commandsPerSecond", commandsPerSecond);
+            map.put("workers", workers);
+            map.put("capacity", capacity);
+            map.put("overflow", overflow.name().toLowerCase());
+            map.put("latencyScale", latencyScale);
+            map.put("failureScale", failureScale);
+            return map;
+        }
+    }
+
+    private static final long MICROS_PER_SECOND = 1_000_000L;
+    private static final long DRIFT_EVERY_MICROS = 60 * MICROS_PER_SECOND;
+    private static final double DRIFT_PER_MINUTE = 0.05; // share of the gap to the setpoint closed per minute
+
+    private static final int ARRIVAL = 0;
+    private static final int ANSWER = 1;
+    private static final int DRIFT = 2;
+
+    private static final int OK = 0;
+    private static final int FAILS = 1;
+    private static final int TIMES_OUT = 2;
+
+    private static final class SimDevice {
+        final String name;
+        final DeviceType type;
+
+        SimDevice(String name, DeviceType type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    /** How the device will answer a command, drawn when the command arrives. */
+    private static final class Draw {
+        final long arrivedMicros;
+        final long busyMicros;
+        final int outcome;
+
+        Draw(long arrivedMicros, long busyMicros, int outcome) {
+            this.arrivedMicros = arrivedMicros;
+            this.busyMicros = busyMicros;
+            this.outcome = outcome;
+        }
+    }
+
+    /** A device call waiting for the virtual clock to reach its answer. */
+    private static final class Call {
+        final App.DeviceCommandExpression command;
+        final Draw draw;
+        final CompletableFuture<Void> answer = new CompletableFuture<>();
+
+        Call(App.DeviceCommandExpression command, Draw draw) {
+            this.command = command;
+            this.draw = draw;
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long atMicros;
+        final long sequence; // orders events at the same instant by creation, for reproducibility
+        final int kind;
+        final Call call;
+
+        Event(long atMicros, long sequence, int kind, Call call) {
+            this.atMicros = atMicros;
+            this.sequence = sequence;
+            this.kind = kind;
+            this.call = call;
+        }
+
+        public int compareTo(Event other) {
+            int byTime = Long.compare(atMicros, other.atMicros);
+            return (byTime != 0) ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /** Answers device calls on the simulator's clock; called from the mailbox workers. */
+    private final class VirtualClockDriver implements App.DeviceDriver {
+        public CompletableFuture<Void> send(App.DeviceCommandExpression cmd) {
+            synchronized (DeviceSimulator.this) {
+                Draw draw = draws.remove(cmd);
+                if (draw == null) {
+                    draw = new Draw(now, Math.max(1, (long) (1000 * typeOf(cmd.getDeviceName()).medianMillis)), OK);
+                }
+                Call call = new Call(cmd, draw);
+                calling.put(cmd.getDeviceName(), call);
+                schedule(now + draw.busyMicros, ANSWER, call);
+                DeviceSimulator.this.notifyAll();
+                return call.answer;
+            }
+        }
+    }
+
+    private final Scenario scenario;
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final SimDevice[] devices;
+    private final Map<String, DeviceType> types = new HashMap<>();
+    private final Map<String, Double> roomTemperatures = new HashMap<>(); // per thermostat, simulator thread only
+    private final long endMicros;
+    private final int workers;
+    private App.DeviceMailboxes mailboxes;
+
+    // Guarded by this: the clock, and what the mailbox workers are doing
+    private final Map<App.DeviceCommandExpression, Draw> draws = new IdentityHashMap<>();
+    private final Map<String, Integer> outstanding = new HashMap<>(); // per device, commands not yet finished
+    private final Map<String, Call> calling = new HashMap<>();        // per device, the call in progress
+    private long now = 0;
+    private long sequence = 0;
+
+    private long arrived, completed, failed, timedOut, rejected;
+    private long[] latencies = new long[1024];
+    private int latencyCount = 0;
+    private long digest = 1125899906842597L;
+
+    DeviceSimulator(Scenario scenario) {
+        this.scenario = scenario;
+        this.random = new Random(scenario.seed);
+        this.workers = Math.max(1, scenario.workers);
+        this.endMicros = (long) (scenario.hours * 3600 * MICROS_PER_SECOND);
+        this.devices = new SimDevice[scenario.devices];
+        int[] counts = new int[DeviceType.values().length];
+        for (int i = 0; i < devices.length; i++) {
+            DeviceType type = pickType();
+            int n = ++counts[type.ordinal()];
+            devices[i] = new SimDevice("sim " + type.label + " " + n, type);
+            types.put(devices[i].name, type);
+            if (type == DeviceType.THERMOSTAT) {
+                roomTemperatures.put(devices[i].name, 64.0 + random.nextInt(16));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+
+        // Executed commands are logged by the visitor; keep the report readable
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            report.putAll(new DeviceSimulator(Scenario.from(options)).run());
+        } finally {
+            System.setOut(console);
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        if (options.containsKey("out")) {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Simulation report written to " + options.get("out"));
+        } else {
+            System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+    }
+
+    /** Runs the scenario to the end of its virtual duration, then until every queued command is done. */
+    Map<String, Object> run() throws InterruptedException {
+        App.DeviceCalls previous = App.DeviceCalls.get();
+        // The driver enforces the device timeouts; a failure threshold above 1 keeps every breaker closed
+        App.DeviceCalls.use(new App.DeviceCalls(new VirtualClockDriver(), TimeUnit.HOURS.toMillis(1), 0, 1, false,
+            20, 2.0, 1));
+        Map<App.DeviceMailboxes.Lane, App.DeviceMailboxes.LaneLimits> limits = new EnumMap<>(App.DeviceMailboxes.Lane.class);
+        for (App.DeviceMailboxes.Lane lane : App.DeviceMailboxes.Lane.values()) {
+            limits.put(lane, new App.DeviceMailboxes.LaneLimits(0, workers, devices.length * scenario.capacity));
+        }
+        mailboxes = new App.DeviceMailboxes(new App.CommandExecutorVisitor(), workers, scenario.capacity,
+            scenario.overflow, false, limits, 50);
+
+        long started = System.nanoTime();
+        try {
+            synchronized (this) {
+                schedule(nextArrival(0), ARRIVAL, null);
+                schedule(DRIFT_EVERY_MICROS, DRIFT, null);
+            }
+            while (true) {
+                Event event;
+                synchronized (this) {
+                    awaitSettled();
+                    event = events.poll();
+                    if (event == null) {
+                        break;
+                    }
+                    now = event.atMicros;
+                }
+                switch (event.kind) {
+                    case ARRIVAL:
+                        arrive();
+                        break;
+                    case ANSWER:
+                        answer(event.call);
+                        break;
+                    default:
+                        drift();
+                }
+            }
+        } finally {
+            App.DeviceCalls.use(previous);
+        }
+        return report(System.nanoTime() - started);
+    }
+
+    /**
+     * Waits until the workers have done everything the last event allowed: every device with
+     * unfinished commands has a call in progress, or every worker is in a call.
+     */
+    private void awaitSettled() throws InterruptedException {
+        while (true) {
+            boolean settled = calling.size() >= workers;
+            if (!settled) {
+                settled = true;
+                for (String device : outstanding.keySet()) {
+                    if (!calling.containsKey(device)) {
+                        settled = false;
+                        break;
+                    }
+                }
+            }
+            if (settled) {
+                return;
+            }
+            wait(1000);
+        }
+    }
+
+    private void arrive() {
+        App.DeviceCommandExpression command;
+        Draw draw;
+        synchronized (this) {
+            arrived++;
+            SimDevice device = devices[random.nextInt(devices.length)];
+            command = command(device);
+            DeviceType type = device.type;
+            double latencyMillis = scenario.latencyScale * type.medianMillis * Math.exp(type.sigma * random.nextGaussian());
+            boolean fails = random.nextDouble() < type.failureRate * scenario.failureScale;
+            if (latencyMillis > type.timeoutMillis) {
+                draw = new Draw(now, type.timeoutMillis * 1000, TIMES_OUT);
+            } else {
+                draw = new Draw(now, Math.max(1, (long) (latencyMillis * 1000)), fails ? FAILS : OK);
+            }
+            draws.put(command, draw);
+            outstanding.merge(device.name, 1, Integer::sum);
+            long next = nextArrival(now);
+            if (next < endMicros) {
+                schedule(next, ARRIVAL, null);
+            }
+        }
+        mailboxes.tell(command, App.DeviceState.ANY_VERSION)
+            .whenComplete((result, error) -> finished(command, draw, result, error));
+    }
+
+    private void answer(Call call) {
+        synchronized (this) {
+            calling.remove(call.command.getDeviceName());
+        }
+        String device = call.command.getDeviceName();
+        if (call.draw.outcome == FAILS) {
+            call.answer.completeExceptionally(new IllegalStateException(device + " reported an error"));
+        } else if (call.draw.outcome == TIMES_OUT) {
+            call.answer.completeExceptionally(new TimeoutException(
+                "no answer within " + typeOf(device).timeoutMillis + " ms"));
+        } else {
+            call.answer.complete(null);
+        }
+    }
+
+    /** Called on the thread that completes the command: a mailbox worker, or the caller if it was rejected. */
+    private synchronized void finished(App.DeviceCommandExpression command, Draw draw, App.ExecutionResult result,
+                                       Throwable error) {
+        String device = command.getDeviceName();
+        draws.remove(command);
+        outstanding.compute(device, (k, n) -> (n == 1) ? null : n - 1);
+        int outcome;
+        if (error != null) {
+            rejected++;
+            outcome = 3;
+        } else {
+            recordLatency(now - draw.arrivedMicros);
+            if (result.success) {
+                completed++;
+                outcome = OK;
+            } else if (draw.outcome == TIMES_OUT) {
+                timedOut++;
+                outcome = TIMES_OUT;
+            } else {
+                failed++;
+                outcome = FAILS;
+            }
+        }
+        mix(device.hashCode() * 31L + outcome);
+        mix(now);
+        notifyAll();
+    }
+
+    /** Moves every thermostat's room temperature toward the setpoint in its device state. */
+    private void drift() {
+        for (SimDevice device : devices) {
+            if (device.type == DeviceType.THERMOSTAT) {
+                double noise = 0.1 * random.nextGaussian();
+                double room = roomTemperatures.get(device.name);
+                int setpoint = App.DeviceStateManager.getState(device.name).getTemperature();
+                roomTemperatures.put(device.name, room + DRIFT_PER_MINUTE * (setpoint - room) + noise);
+            }
+        }
+        synchronized (this) {
+            if (now + DRIFT_EVERY_MICROS < endMicros) {
+                schedule(now + DRIFT_EVERY_MICROS, DRIFT, null);
+            }
+        }
+    }
+
+    private App.DeviceCommandExpression command(SimDevice device) {
+        switch (device.type) {
+            case LIGHT: {
+                int pick = random.nextInt(5);
+                String[] actions = {"ON", "OFF", "DIM", "BRIGHTEN", "SET"};
+                return new App.DeviceCommandExpression(device.name, actions[pick],
+                    (pick == 4) ? Integer.toString(random.nextInt(101)) : null);
+            }
+            case THERMOSTAT: {
+                int pick = random.nextInt(3);
+                String[] actions = {"SET", "INCREASE", "DECREASE"};
+                return new App.DeviceCommandExpression(device.name, actions[pick],
+                    (pick == 0) ? Integer.toString(60 + random.nextInt(26)) : null);
+            }
+            case FAN:
+                return new App.DeviceCommandExpression(device.name, random.nextBoolean() ? "ON" : "OFF", null);
+            default:
+                return new App.DeviceCommandExpression(device.name, random.nextBoolean() ? "LOCK" : "UNLOCK", null);
+        }
+    }
+
+    private DeviceType typeOf(String device) {
+        return types.getOrDefault(device, DeviceType.LIGHT);
+    }
+
+    private DeviceType pickType() {
+        int roll = random.nextInt(100);
+        for (DeviceType type : DeviceType.values()) {
+            roll -= type.sharePercent;
+            if (roll < 0) {
+                return type;
+            }
+        }
+        return DeviceType.LIGHT;
+    }
+
+    private long nextArrival(long from) {
+        double gapSeconds = -Math.log(1.0 - random.nextDouble()) / scenario.commandsPerSecond;
+        return from + Math.max(1, (long) (gapSeconds * MICROS_PER_SECOND));
+    }
+
+    private void schedule(long atMicros, int kind, Call call) {
+        events.add(new Event(atMicros, sequence++, kind, call));
+    }
+
+    private void recordLatency(long micros) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = micros;
+    }
+
+    private void mix(long value) {
+        digest = digest * 1099511628211L + value;
+    }
+
+    private synchronized Map<String, Object> report(long wallNanos) {
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        double virtualSeconds = now / (double) MICROS_PER_SECOND;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("scenario", scenario.describe());
+        report.put("virtualSeconds", Math.round(virtualSeconds));
+        report.put("wallMillis", TimeUnit.NANOSECONDS.toMillis(wallNanos));
+        report.put("speedup", Math.round(virtualSeconds / (wallNanos / 1e9)));
+
+        Map<String, Object> commands = new LinkedHashMap<>();
+        commands.put("arrived", arrived);
+        commands.put("completed", completed);
+        commands.put("failed", failed);
+        commands.put("timedOut", timedOut);
+        commands.put("rejected", rejected);
+        report.put("commands", commands);
+        report.put("throughputPerSecond", Math.round(10.0 * completed / Math.max(virtualSeconds, 1e-9)) / 10.0);
+
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("p50", percentileMillis(sorted, 0.50));
+        latency.put("p90", percentileMillis(sorted, 0.90));
+        latency.put("p99", percentileMillis(sorted, 0.99));
+        latency.put("p999", percentileMillis(sorted, 0.999));
+        latency.put("max", (sorted.length == 0) ? 0.0 : sorted[sorted.length - 1] / 1000.0);
+        report.put("latencyMillis", latency);
+
+        double totalGap = 0;
+        double worstGap = 0;
+        int thermostats = 0;
+        for (SimDevice device : devices) {
+            if (device.type == DeviceType.THERMOSTAT) {
+                double room = roomTemperatures.get(device.name);
+                double gap = Math.abs(room - App.DeviceStateManager.getState(device.name).getTemperature());
+                totalGap += gap;
+                worstGap = Math.max(worstGap, gap);
+                thermostats++;
+                mix(Double.doubleToLongBits(room));
+            }
+        }
+        Map<String, Object> drift = new LinkedHashMap<>();
+        drift.put("thermostats", thermostats);
+        drift.put("meanDegreesFromSetpoint", (thermostats == 0) ? 0.0 : Math.round(100.0 * totalGap / thermostats) / 100.0);
+        drift.put("worstDegreesFromSetpoint", Math.round(100.0 * worstGap) / 100.0);
+        report.put("drift", drift);
+        report.put("digest", Long.toHexString(digest));
+        return report;
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+}
@@ -0,0 +1,145 @@
+package com.automation.voice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One keep-alive HTTP/1.1 connection for the load tools, one request at a time. A plain socket
+ * rather than java.net.http, which spends more per request on the client than the server does on
+ * /api/execute and would make the measured latency a measure of the client. Responses are read in
+ * full and discarded; only the status code is returned.
+ */
+final class HttpConnection {
+    private final String host;
+    private final int port;
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+
+    HttpConnection(String host, int port) {
+        this.host = host;
+        this.port = (port > 0) ? port : 80;
+    }
+
+    int get(String path) throws IOException {
+        return send("GET", path, null);
+    }
+
+    int post(String path, String body) throws IOException {
+        return send("POST", path, body);
+    }
+
+    /**
+     * Sends the request and reads the whole response; returns its status code. On an I/O error the
+     * connection is closed, and the next request reconnects.
+     */
+    int send(String method, String path, String body) throws IOException {
+        try {
+            return exchange(method, path, body);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private int exchange(String method, String path, String body) throws IOException {
+        if (socket == null) {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(socket.getInputStream());
+        }
+        StringBuilder head = new StringBuilder(128)
+            .append(method).append(' ').append(path).append(" HTTP/1.1\r\nHost: ").append(host).append("\r\n");
+        byte[] content = null;
+        if (body != null) {
+            content = body.getBytes(StandardCharsets.UTF_8);
+            head.append("Content-Type: application/json\r\nContent-Length: ").append(content.length).append("\r\n");
+        }
+        out.write(head.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+        if (content != null) {
+            out.write(content);
+        }
+        out.flush();
+
+        String statusLine = readLine();
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long length = 0;
+        boolean chunked = false;
+        boolean close = false;
+        for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+            String name = header.substring(0, Math.max(0, header.indexOf(':'))).trim().toLowerCase();
+            String value = header.substring(header.indexOf(':') + 1).trim().toLowerCase();
+            if (name.equals("content-length")) {
+                length = Long.parseLong(value);
+            } else if (name.equals("transfer-encoding")) {
+                chunked = value.contains("chunked");
+            } else if (name.equals("connection")) {
+                close = value.contains("close");
+            }
+        }
+        if (chunked) {
+            for (long size = chunkSize(readLine()); size > 0; size = chunkSize(readLine())) {
+                skip(size);
+                readLine();
+            }
+            for (String trailer = readLine(); !trailer.isEmpty(); trailer = readLine()) {
+                // trailers, if any, end with an empty line
+            }
+        } else {
+            skip(length);
+        }
+        if (close) {
+            close(); // the server's keep-alive limit; the next request reconnects
+        }
+        return status;
+    }
+
+    private static long chunkSize(String line) {
+        int extension = line.indexOf(';');
+        return Long.parseLong((extension >= 0) ? line.substring(0, extension).trim() : line.trim(), 16);
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new EOFException("connection closed mid-response");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void skip(long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("connection closed mid-response");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+            socket = null;
+        }
+    }
+}
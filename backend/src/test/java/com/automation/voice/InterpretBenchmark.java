@@ -0,0 +1,148 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Interpret Benchmark for the Voice Automation Hub backend
+ *
+ * Measures, in-process and on one thread, what each interpretation stage of /api/interpret costs
+ * per utterance over a fixed set of commands, small talk and time-qualified commands:
+ *   normalize    lower-case, trim and tokenize once ({@link App.Utterance}), take out the time phrase
+ *   device       parseDevice on the token stream
+ *   action       parseAction
+ *   parameter    parseParameter
+ *   smalltalk    isGreeting and isQuestion
+ *   total        all of the above, as the endpoint runs them for one request
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.InterpretBenchmark --duration=5
+ *
+ * Options: --duration=5 (seconds per stage), --out=file.json
+ * Allocation is per-thread allocated bytes, reported where the JVM supports it.
+ */
+public class InterpretBenchmark {
+
+    static final String[] UTTERANCES = {
+        "turn on the living room light", "switch off bedroom lights", "dim the kitchen light",
+        "turn down the kitchen light", "turn down the thermostat", "set thermostat to 72",
+        "set the temperature to 68", "make it warmer", "I'm a big fan of jazz", "turn on the ceiling fan",
+        "lock the front door", "unlock the door lock", "un lock the door", "brighten the living-room light",
+        "increase brightness in the lounge", "what time is it?", "hello there!", "hi", "good morning",
+        "can you turn the fan off", "is the door locked", "lights on", "fan off please",
+        "shut down the fan", "power up the lamp", "raise the temp", "lower the heat",
+        "please set the bedroom light to 40 percent", "turn on the kitchen light in 20 minutes",
+        "set thermostat to seventy two at 7:30 pm", "could you dim my bedroom lamp a bit",
+    };
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final App.Utterance[] spoken = new App.Utterance[UTTERANCES.length];
+    private final App.Utterance[] commands = new App.Utterance[UTTERANCES.length];
+    private int sink = 0;
+
+    InterpretBenchmark() {
+        for (int i = 0; i < UTTERANCES.length; i++) {
+            spoken[i] = App.Utterance.of(UTTERANCES[i]);
+            commands[i] = App.commandUtterance(UTTERANCES[i]);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "5")));
+
+        InterpretBenchmark benchmark = new InterpretBenchmark();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("utterances", UTTERANCES.length);
+        Map<String, Object> stages = new LinkedHashMap<>();
+        stages.put("normalize", benchmark.measure(benchmark::normalize, durationNanos));
+        stages.put("device", benchmark.measure(i -> benchmark.consume(App.parseDevice(benchmark.commands[i])), durationNanos));
+        stages.put("action", benchmark.measure(i -> benchmark.consume(App.parseAction(benchmark.commands[i])), durationNanos));
+        stages.put("parameter", benchmark.measure(i -> benchmark.consume(App.parseParameter(benchmark.commands[i])), durationNanos));
+        stages.put("smalltalk", benchmark.measure(benchmark::smalltalk, durationNanos));
+        stages.put("total", benchmark.measure(benchmark::total, durationNanos));
+        report.put("stages", stages);
+
+        if (options.containsKey("out")) {
+            benchmark.mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Interpret report written to " + options.get("out"));
+        } else {
+            System.out.println(benchmark.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+    }
+
+    private void normalize(int i) {
+        App.Utterance utterance = App.Utterance.of(UTTERANCES[i]);
+        consume(utterance.without(App.TimeExpression.parse(utterance.text)).withoutFillers);
+    }
+
+    private void smalltalk(int i) {
+        sink += (App.isGreeting(spoken[i]) ? 1 : 0) + (App.isQuestion(spoken[i]) ? 1 : 0);
+    }
+
+    private void total(int i) {
+        App.Utterance utterance = App.Utterance.of(UTTERANCES[i]);
+        App.Utterance command = utterance.without(App.TimeExpression.parse(utterance.text));
+        consume(App.parseDevice(command));
+        consume(App.parseAction(command));
+        consume(App.parseParameter(command));
+        smalltalk(i);
+    }
+
+    private void consume(String result) {
+        sink += (result != null) ? result.length() : 0;
+    }
+
+    private Map<String, Object> measure(IntConsumer stage, long durationNanos) {
+        run(stage, TimeUnit.SECONDS.toNanos(1)); // warm-up
+        long allocatedBefore = allocatedBytes();
+        long started = System.nanoTime();
+        long runs = run(stage, durationNanos);
+        long elapsed = System.nanoTime() - started;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("utterancesPerSecond", Math.round(runs / (elapsed / 1e9)));
+        result.put("nanosPerUtterance", Math.round(10.0 * elapsed / runs) / 10.0);
+        result.put("allocatedBytesPerUtterance", (allocatedBefore >= 0) ? allocated / runs : null);
+        if (sink == 42) {
+            System.out.print(""); // keeps the results live
+        }
+        return result;
+    }
+
+    private long run(IntConsumer stage, long durationNanos) {
+        long runs = 0;
+        long started = System.nanoTime();
+        while (System.nanoTime() - started < durationNanos) {
+            for (int i = 0; i < UTTERANCES.length; i++) {
+                stage.accept(i);
+            }
+            runs += UTTERANCES.length;
+        }
+        return runs;
+    }
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
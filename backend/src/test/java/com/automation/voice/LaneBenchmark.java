@@ -0,0 +1,157 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Lane Benchmark for the Voice Automation Hub backend
+ *
+ * Saturates the device mailboxes in-process with background traffic (automation-style dimming
+ * over many lights, kept at --backlog commands in flight) and meanwhile sends a door lock
+ * command and a user light command every --interval-ms, recording how long each took from
+ * being queued to being executed. Runs twice:
+ *   fifo       lanes off: every command waits in one queue for the shared pool, as before lanes
+ *   lanes      safety, interactive and background lanes with their default limits
+ * Every executed command writes device state and a history record, as in production.
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.LaneBenchmark --duration=10
+ *
+ * Options: --duration=10 (seconds per mode), --workers=4, --lights=500, --producers=4,
+ * --backlog=20000, --interval-ms=10, --out=file.json
+ */
+public class LaneBenchmark {
+
+    private static final String[] BULK_ACTIONS = {"DIM", "BRIGHTEN", "ON", "OFF"};
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final int workers;
+    private final int lights;
+    private final int producers;
+    private final int backlog;
+    private final long intervalMillis;
+
+    LaneBenchmark(int workers, int lights, int producers, int backlog, long intervalMillis) {
+        this.workers = workers;
+        this.lights = lights;
+        this.producers = producers;
+        this.backlog = backlog;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+        LaneBenchmark benchmark = new LaneBenchmark(
+            Integer.parseInt(options.getOrDefault("workers", "4")),
+            Integer.parseInt(options.getOrDefault("lights", "500")),
+            Integer.parseInt(options.getOrDefault("producers", "4")),
+            Integer.parseInt(options.getOrDefault("backlog", "20000")),
+            Long.parseLong(options.getOrDefault("interval-ms", "10")));
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("workers", benchmark.workers);
+        report.put("lights", benchmark.lights);
+        report.put("backlog", benchmark.backlog);
+        Map<String, Object> modes = new LinkedHashMap<>();
+        // Executed commands are logged by the visitor; keep the report readable
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            modes.put("fifo", benchmark.run(false, durationNanos));
+            modes.put("lanes", benchmark.run(true, durationNanos));
+        } finally {
+            System.setOut(console);
+        }
+        report.put("modes", modes);
+
+        if (options.containsKey("out")) {
+            benchmark.mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Lane report written to " + options.get("out"));
+        } else {
+            System.out.println(benchmark.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+        System.exit(0); // the mailbox workers would keep the JVM alive
+    }
+
+    private Map<String, Object> run(boolean prioritized, long durationNanos) throws InterruptedException {
+        App.DeviceMailboxes mailboxes = new App.DeviceMailboxes(new App.CommandExecutorVisitor(), workers,
+            64, App.DeviceMailboxes.OverflowPolicy.REJECT, prioritized,
+            App.DeviceMailboxes.LaneLimits.defaults(workers), 50);
+        Semaphore inFlight = new Semaphore(backlog);
+        AtomicLong bulkExecuted = new AtomicLong();
+        AtomicLong bulkRejected = new AtomicLong();
+        long deadline = System.nanoTime() + durationNanos;
+
+        Thread[] flood = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            flood[p] = new Thread(() -> {
+                long n = producer;
+                while (System.nanoTime() < deadline) {
+                    try {
+                        if (!inFlight.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                            continue;
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    App.DeviceCommandExpression cmd = new App.DeviceCommandExpression(
+                        "bulk light " + (n % lights), BULK_ACTIONS[(int) (n / lights % BULK_ACTIONS.length)], null);
+                    n += producers;
+                    mailboxes.tell(cmd, App.DeviceState.ANY_VERSION, App.DeviceMailboxes.Lane.BACKGROUND)
+                        .whenComplete((result, error) -> {
+                            (error == null ? bulkExecuted : bulkRejected).incrementAndGet();
+                            inFlight.release();
+                        });
+                }
+            }, "bulk-producer-" + p);
+            flood[p].start();
+        }
+
+        App.DeviceMailboxes.LatencyHistogram lock = new App.DeviceMailboxes.LatencyHistogram();
+        App.DeviceMailboxes.LatencyHistogram user = new App.DeviceMailboxes.LatencyHistogram();
+        TimeUnit.MILLISECONDS.sleep(500); // let the backlog build up first
+        boolean locked = false;
+        while (System.nanoTime() < deadline) {
+            locked = !locked;
+            timed(mailboxes, new App.DeviceCommandExpression("door lock", locked ? "LOCK" : "UNLOCK", null), lock);
+            timed(mailboxes, new App.DeviceCommandExpression("living room light", locked ? "ON" : "OFF", null), user);
+            TimeUnit.MILLISECONDS.sleep(intervalMillis);
+        }
+        for (Thread t : flood) {
+            t.join();
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("lockLatencyMicros", lock.summary());
+        result.put("userLatencyMicros", user.summary());
+        result.put("bulkExecuted", bulkExecuted.get());
+        result.put("bulkRejected", bulkRejected.get());
+        result.put("lanes", mailboxes.metrics().get("lanes"));
+        return result;
+    }
+
+    private static void timed(App.DeviceMailboxes mailboxes, App.DeviceCommandExpression cmd,
+                              App.DeviceMailboxes.LatencyHistogram histogram) {
+        long started = System.nanoTime();
+        mailboxes.tell(cmd, App.DeviceState.ANY_VERSION).whenComplete((result, error) ->
+            histogram.record((System.nanoTime() - started) / 1000));
+    }
+}
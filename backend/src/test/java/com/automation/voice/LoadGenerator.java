@@ -0,0 +1,339 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Load Generator for the Voice Automation Hub REST API
+ *
+ * Replays a weighted mix of /api/interpret, /api/execute, /api/devices and /api/history requests
+ * at a fixed arrival rate (open model) and reports latency percentiles, throughput and error
+ * rates as JSON. Latency is measured from each request's intended send time, not the actual one,
+ * so a stalled server is charged for the requests that queued behind it (coordinated omission).
+ * Requests go out on a pool of plain keep-alive connections ({@link HttpConnection}) so that the
+ * client's own cost per request stays well below the server's.
+ *
+ * Usage:
+ *   ./mvnw test-compile spring-boot:run -Dspring-boot.run.useTestClasspath=true \
+ *       -Dspring-boot.run.main-class=com.automation.voice.LoadGenerator \
+ *       -Dspring-boot.run.arguments="--rate=200 --duration=30 --out=load-report.json"
+ *
+ * Options (all optional):
+ *   --url=http://host:port   target a running server instead of starting App in-process
+ *   --rate=100               requests per second
+ *   --duration=30            measured seconds
+ *   --warmup=5               seconds sent before measuring (not reported)
+ *   --connections=32         keep-alive connections; a request waits for a free one (and is charged for it)
+ *   --mix=interpret:40,execute:40,devices:15,history:5
+ *   --seed=42                request sequence is reproducible for a given seed
+ *   --label=...              free text stored in the report, e.g. the commit under test
+ *   --out=file.json          write the report to a file instead of stdout
+ */
+public class LoadGenerator {
+
+    private static final String[] UTTERANCES = {
+        "Turn on the living room light",
+        "Turn off the bedroom light",
+        "Dim the kitchen light",
+        "Set thermostat to 72 degrees",
+        "Make the bedroom light brighter",
+        "Turn on the fan",
+        "Lock the door",
+        "Unlock the door",
+        "Increase the temperature",
+        "Set the kitchen light to 40 percent"
+    };
+
+    private static final String[][] EXECUTES = {
+        {"living room light", "ON", ""},
+        {"living room light", "OFF", ""},
+        {"bedroom light", "DIM", ""},
+        {"bedroom light", "BRIGHTEN", ""},
+        {"kitchen light", "SET", "60"},
+        {"thermostat", "INCREASE", ""},
+        {"thermostat", "SET", "70"},
+        {"fan", "ON", ""},
+        {"door lock", "LOCK", ""},
+        {"door lock", "UNLOCK", ""}
+    };
+
+    private static final String[] ENDPOINTS = {"interpret", "execute", "devices", "history"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String url = options.get("url");
+        int rate = Integer.parseInt(options.getOrDefault("rate", "100"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int connections = Integer.parseInt(options.getOrDefault("connections", "32"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        int[] weights = parseMix(options.getOrDefault("mix", "interpret:40,execute:40,devices:15,history:5"));
+
+        if (rate <= 0 || duration <= 0 || warmup < 0 || connections <= 0) {
+            throw new IllegalArgumentException("rate, duration and connections must be positive, warmup must not be negative");
+        }
+
+        ConfigurableApplicationContext context = null;
+        if (url == null) {
+            context = SpringApplication.run(App.class, "--server.port=0", "--logging.level.root=WARN");
+            url = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+        }
+
+        try {
+            Map<String, Object> report = new LoadGenerator(url, rate, seed, weights, connections).run(warmup, duration);
+            report.put("label", options.getOrDefault("label", ""));
+            report.put("target", options.containsKey("url") ? url : "in-process");
+            report.put("config", options);
+
+            ObjectMapper mapper = new ObjectMapper();
+            if (options.containsKey("out")) {
+                mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+                System.out.println("Load report written to " + options.get("out"));
+            } else {
+                System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+            }
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    /** One request of the schedule, waiting for a connection. */
+    private static final class Request {
+        final String method;
+        final String path;
+        final String body;
+        final long intendedNanos;
+        final EndpointStats stats;
+        final CountDownLatch done;
+
+        Request(String method, String path, String body, long intendedNanos, EndpointStats stats, CountDownLatch done) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.intendedNanos = intendedNanos;
+            this.stats = stats;
+            this.done = done;
+        }
+    }
+
+    private final URI base;
+    private final String prefix; // path of --url, without the trailing slash
+    private final int rate;
+    private final Random random;
+    private final int[] weights;
+    private final int connections;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    LoadGenerator(String baseUrl, int rate, long seed, int[] weights, int connections) {
+        this.base = URI.create(baseUrl);
+        String path = (base.getPath() != null) ? base.getPath() : "";
+        this.prefix = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        this.rate = rate;
+        this.random = new Random(seed);
+        this.weights = weights;
+        this.connections = connections;
+    }
+
+    Map<String, Object> run(int warmupSeconds, int durationSeconds) throws Exception {
+        Thread[] clients = new Thread[connections];
+        for (int c = 0; c < clients.length; c++) {
+            clients[c] = new Thread(this::sendQueued, "load-client-" + c);
+            clients[c].setDaemon(true);
+            clients[c].start();
+        }
+        Map<String, EndpointStats> stats = newStats();
+        double elapsedSeconds;
+        try {
+            // Warm-up traffic uses the same schedule but is recorded into throwaway stats
+            fire(warmupSeconds, newStats());
+            long started = System.nanoTime();
+            fire(durationSeconds, stats);
+            elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        } finally {
+            for (Thread client : clients) {
+                client.interrupt();
+            }
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("targetRate", rate);
+        report.put("durationSeconds", durationSeconds);
+
+        EndpointStats total = new EndpointStats();
+        Map<String, Object> endpoints = new LinkedHashMap<>();
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            total.merge(entry.getValue());
+            if (entry.getValue().sent.get() > 0) {
+                endpoints.put(entry.getKey(), entry.getValue().toReport(elapsedSeconds));
+            }
+        }
+        report.put("total", total.toReport(elapsedSeconds));
+        report.put("endpoints", endpoints);
+        return report;
+    }
+
+    /** Issues requests on a fixed schedule for the given time and waits for all of them to finish. */
+    private void fire(int seconds, Map<String, EndpointStats> stats) throws Exception {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long total = (long) rate * seconds;
+        CountDownLatch done = new CountDownLatch((int) total);
+        long start = System.nanoTime();
+
+        for (long i = 0; i < total; i++) {
+            long intended = start + i * intervalNanos;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            String endpoint = pickEndpoint();
+            EndpointStats endpointStats = stats.get(endpoint);
+            endpointStats.sent.incrementAndGet();
+            queue.add(buildRequest(endpoint, intended, endpointStats, done));
+        }
+        if (!done.await(60, TimeUnit.SECONDS)) {
+            System.err.println("⚠️ " + done.getCount() + " request(s) still unanswered after 60 s");
+        }
+    }
+
+    /** Client thread: sends queued requests on its own connection until interrupted. */
+    private void sendQueued() {
+        HttpConnection connection = new HttpConnection(base.getHost(), base.getPort());
+        try {
+            while (true) {
+                Request request = queue.take();
+                boolean failed;
+                try {
+                    failed = connection.send(request.method, request.path, request.body) >= 400;
+                } catch (IOException | RuntimeException e) {
+                    failed = true; // the connection reconnects on the next request
+                }
+                request.stats.histogram.record((System.nanoTime() - request.intendedNanos) / 1000);
+                if (failed) {
+                    request.stats.errors.incrementAndGet();
+                }
+                request.done.countDown();
+            }
+        } catch (InterruptedException e) {
+            // run() is over
+        } finally {
+            connection.close();
+        }
+    }
+
+    private String pickEndpoint() {
+        int sum = 0;
+        for (int w : weights) sum += w;
+        int roll = random.nextInt(sum);
+        for (int i = 0; i < weights.length; i++) {
+            roll -= weights[i];
+            if (roll < 0) return ENDPOINTS[i];
+        }
+        return ENDPOINTS[0];
+    }
+
+    private Request buildRequest(String endpoint, long intended, EndpointStats stats, CountDownLatch done) {
+        switch (endpoint) {
+            case "interpret": {
+                String utterance = UTTERANCES[random.nextInt(UTTERANCES.length)];
+                return new Request("POST", prefix + "/api/interpret",
+                    "{\"command\":\"" + utterance + "\"}", intended, stats, done);
+            }
+            case "execute": {
+                String[] cmd = EXECUTES[random.nextInt(EXECUTES.length)];
+                return new Request("POST", prefix + "/api/execute",
+                    "{\"device\":\"" + cmd[0] + "\",\"action\":\"" + cmd[1] + "\",\"parameter\":\"" + cmd[2] + "\"}",
+                    intended, stats, done);
+            }
+            case "devices":
+                return new Request("GET", prefix + "/api/devices", null, intended, stats, done);
+            default:
+                return new Request("GET", prefix + "/api/history", null, intended, stats, done);
+        }
+    }
+
+    private static Map<String, EndpointStats> newStats() {
+        Map<String, EndpointStats> stats = new LinkedHashMap<>();
+        for (String endpoint : ENDPOINTS) {
+            stats.put(endpoint, new EndpointStats());
+        }
+        return stats;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int eq = arg.indexOf('=');
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[ENDPOINTS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            boolean known = false;
+            for (int i = 0; i < ENDPOINTS.length; i++) {
+                if (ENDPOINTS[i].equals(kv[0])) {
+                    weights[i] = Integer.parseInt(kv[1]);
+                    known = true;
+                }
+            }
+            if (!known) {
+                throw new IllegalArgumentException("Unknown endpoint in mix: " + kv[0]);
+            }
+        }
+        return weights;
+    }
+
+    // ========== STATISTICS ==========
+    static class EndpointStats {
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final App.DeviceMailboxes.LatencyHistogram histogram = new App.DeviceMailboxes.LatencyHistogram(8); // under 1% error
+
+        void merge(EndpointStats other) {
+            sent.addAndGet(other.sent.get());
+            errors.addAndGet(other.errors.get());
+            histogram.add(other.histogram);
+        }
+
+        Map<String, Object> toReport(double elapsedSeconds) {
+            long completed = histogram.count();
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("requests", sent.get());
+            report.put("errors", errors.get());
+            report.put("errorRate", completed == 0 ? 0.0 : (double) errors.get() / completed);
+            report.put("throughputPerSecond", completed / elapsedSeconds);
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("p50", histogram.percentile(50.0) / 1000.0);
+            latency.put("p90", histogram.percentile(90.0) / 1000.0);
+            latency.put("p99", histogram.percentile(99.0) / 1000.0);
+            latency.put("p999", histogram.percentile(99.9) / 1000.0);
+            latency.put("max", histogram.max() / 1000.0);
+            report.put("latencyMillis", latency);
+            return report;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Poll Benchmark for the Voice Automation Hub backend
+ *
+ * Measures, in-process and on one thread, what a poll of /api/devices and /api/history costs the
+ * server for each way of producing the body:
+ *   rebuild       build the response from the live state and serialize it on every poll
+ *                 (how both endpoints worked before their bodies were cached)
+ *   cached        serve the JSON bytes rendered once per version
+ *   conditional   client sends the ETag it already has; a 304 needs no body at all
+ * Every --write-every polls a device command is executed (adding a history record), so the cached
+ * modes re-render now and then, like a real dashboard poller would see.
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.PollBenchmark --duration=5
+ *
+ * Options: --duration=5 (seconds per mode), --write-every=100, --history=1000, --out=file.json
+ * CPU time is per-thread CPU from the JVM; allocation is reported where the JVM supports it.
+ */
+public class PollBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final App.CommandExecutorVisitor executor = new App.CommandExecutorVisitor();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private long writes = 0;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "5")));
+        int writeEvery = Integer.parseInt(options.getOrDefault("write-every", "100"));
+        int history = Integer.parseInt(options.getOrDefault("history", "1000"));
+
+        PollBenchmark benchmark = new PollBenchmark();
+        for (int i = 0; i < history; i++) {
+            benchmark.write();
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("writeEvery", writeEvery);
+        report.put("historySize", App.Repository.getHistorySize());
+        report.put("devices", benchmark.endpoint(App.DeviceStateManager::changeVersion, App::devicesBody,
+            durationNanos, writeEvery));
+        report.put("history", benchmark.endpoint(App.Repository::historyVersion, App.Repository::getHistory,
+            durationNanos, writeEvery));
+
+        if (options.containsKey("out")) {
+            benchmark.mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Poll report written to " + options.get("out"));
+        } else {
+            System.out.println(benchmark.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+    }
+
+    private Map<String, Object> endpoint(LongSupplier version, Supplier<Object> body, long durationNanos,
+                                         int writeEvery) throws Exception {
+        App.SnapshotCache cache = new App.SnapshotCache(version, body, true);
+        Map<String, Object> modes = new LinkedHashMap<>();
+        for (String mode : new String[] {"rebuild", "cached", "conditional"}) {
+            measure(mode, cache, body, TimeUnit.SECONDS.toNanos(1), writeEvery); // warm-up
+            long rendersBefore = cache.renders();
+            Map<String, Object> result = measure(mode, cache, body, durationNanos, writeEvery);
+            result.put("renders", cache.renders() - rendersBefore);
+            modes.put(mode, result);
+        }
+        return modes;
+    }
+
+    private Map<String, Object> measure(String mode, App.SnapshotCache cache, Supplier<Object> body,
+                                        long durationNanos, int writeEvery) throws Exception {
+        long polls = 0;
+        long notModified = 0;
+        long bytes = 0;
+        String etag = cache.get().etag;
+        long allocatedBefore = allocatedBytes();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        long started = System.nanoTime();
+        while (System.nanoTime() - started < durationNanos) {
+            if (polls % writeEvery == writeEvery - 1) {
+                write();
+            }
+            if (mode.equals("rebuild")) {
+                bytes += mapper.writeValueAsBytes(body.get()).length;
+            } else {
+                App.SnapshotCache.Rendered rendered = cache.get();
+                if (mode.equals("conditional") && rendered.matches(etag)) {
+                    notModified++;
+                } else {
+                    bytes += rendered.json.length;
+                    etag = rendered.etag;
+                }
+            }
+            polls++;
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long cpuNanos = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("pollsPerSecond", Math.round(polls / seconds));
+        result.put("cpuMicrosPerPoll", Math.round(cpuNanos / 1000.0 / polls * 100) / 100.0);
+        result.put("allocatedBytesPerPoll", (allocatedBefore >= 0) ? allocated / polls : null);
+        result.put("bodyBytesPerPoll", bytes / polls);
+        result.put("notModified", notModified);
+        return result;
+    }
+
+    private void write() {
+        executor.visit(new App.DeviceCommandExpression("living room light", (writes++ % 2 == 0) ? "ON" : "OFF", null));
+    }
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
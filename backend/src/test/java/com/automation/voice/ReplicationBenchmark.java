@@ -0,0 +1,267 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Replication Benchmark for the Voice Automation Hub backend
+ *
+ * Starts a cluster of backend instances on localhost with voicehub.state-store=replicated, each
+ * in its own JVM, and measures:
+ *   writeLatency       POST /api/execute sent to the leader and to a follower (forwarded)
+ *   replicationLag     time from a write acknowledged by the leader until a follower serves it
+ *   failover           the leader is killed; time until a follower accepts writes again, and
+ *                      until every survivor reports the same new leader
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.ReplicationBenchmark --nodes=3
+ *
+ * Options: --nodes=3, --writes=500, --lag-samples=50, --heartbeat-ms=200, --out=file.json
+ */
+public class ReplicationBenchmark {
+
+    private static final String DEVICE = "living room light";
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(500)).build();
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        new ReplicationBenchmark().run(
+            Integer.parseInt(options.getOrDefault("nodes", "3")),
+            Integer.parseInt(options.getOrDefault("writes", "500")),
+            Integer.parseInt(options.getOrDefault("lag-samples", "50")),
+            Long.parseLong(options.getOrDefault("heartbeat-ms", "200")),
+            options.get("out"));
+    }
+
+    private void run(int nodes, int writes, int lagSamples, long heartbeatMillis, String out) throws Exception {
+        if (nodes < 2) {
+            throw new IllegalArgumentException("--nodes must be at least 2");
+        }
+        int[] httpPorts = new int[nodes];
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            httpPorts[i] = freePort();
+            peers.add("localhost:" + freePort());
+        }
+        Path workDir = Files.createTempDirectory("voicehub-replication");
+        List<Process> processes = new ArrayList<>();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                processes.add(startNode(httpPorts[i], peers.get(i), peers, heartbeatMillis, workDir.resolve("node-" + i)));
+            }
+            for (int port : httpPorts) {
+                awaitHealthy(port);
+            }
+            int leader = awaitLeader(httpPorts, peers, null);
+            int follower = (leader + 1) % nodes;
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("timestamp", LocalDateTime.now().toString());
+            report.put("javaVersion", System.getProperty("java.version"));
+            report.put("nodes", nodes);
+            report.put("heartbeatMillis", heartbeatMillis);
+
+            Map<String, Object> writeLatency = new LinkedHashMap<>();
+            writeLatency.put("leader", summarize(timeWrites(httpPorts[leader], writes)));
+            writeLatency.put("follower", summarize(timeWrites(httpPorts[follower], writes)));
+            report.put("writeLatencyMicros", writeLatency);
+            report.put("replicationLagMicros", summarize(replicationLag(httpPorts[leader], httpPorts[follower], lagSamples)));
+
+            // Failover: kill the leader, then keep writing through a survivor
+            processes.get(leader).destroyForcibly();
+            long killed = System.nanoTime();
+            long writable = -1;
+            while (TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - killed) < 60) {
+                if (execute(httpPorts[follower], "ON")) {
+                    writable = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - killed);
+                    break;
+                }
+                Thread.sleep(10);
+            }
+            int[] survivors = new int[nodes - 1];
+            List<String> survivorPeers = new ArrayList<>();
+            for (int i = 0, j = 0; i < nodes; i++) {
+                if (i != leader) {
+                    survivors[j++] = httpPorts[i];
+                    survivorPeers.add(peers.get(i));
+                }
+            }
+            int newLeader = awaitLeader(survivors, survivorPeers, peers.get(leader));
+            Map<String, Object> failover = new LinkedHashMap<>();
+            failover.put("killedLeader", peers.get(leader));
+            failover.put("newLeader", survivorPeers.get(newLeader));
+            failover.put("millisUntilWritable", writable);
+            failover.put("millisUntilAgreed", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - killed));
+            report.put("failover", failover);
+
+            if (out != null) {
+                mapper.writerWithDefaultPrettyPrinter().writeValue(new File(out), report);
+                System.out.println("Replication report written to " + out);
+            } else {
+                System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    private Process startNode(int httpPort, String self, List<String> peers, long heartbeatMillis, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Dspring.profiles.active=lean");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(App.class.getName());
+        command.add("--server.port=" + httpPort);
+        command.add("--voicehub.state-store=replicated");
+        command.add("--voicehub.replication.self=" + self);
+        command.add("--voicehub.replication.peers=" + String.join(",", peers));
+        command.add("--voicehub.replication.heartbeat-ms=" + heartbeatMillis);
+        command.add("--voicehub.schedule.file=" + dir.resolve("schedules.log"));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(dir.resolve("node.log").toFile())
+            .start();
+    }
+
+    private List<Long> timeWrites(int port, int writes) throws Exception {
+        List<Long> micros = new ArrayList<>(writes);
+        for (int i = 0; i < writes; i++) {
+            long started = System.nanoTime();
+            if (!execute(port, (i % 2 == 0) ? "ON" : "OFF")) {
+                throw new IllegalStateException("Write failed on port " + port);
+            }
+            micros.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+        }
+        return micros;
+    }
+
+    private List<Long> replicationLag(int leaderPort, int followerPort, int samples) throws Exception {
+        List<Long> micros = new ArrayList<>(samples);
+        for (int i = 0; i < samples; i++) {
+            boolean on = (i % 2 == 0);
+            execute(leaderPort, on ? "ON" : "OFF");
+            long acknowledged = System.nanoTime();
+            while (!Boolean.valueOf(on).equals(get(followerPort, "/api/devices/" + DEVICE.replace(" ", "%20") + "/status").get("isOn"))) {
+                Thread.onSpinWait();
+            }
+            micros.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - acknowledged));
+        }
+        return micros;
+    }
+
+    /** Waits until every node names the same leader (other than {@code excluded}); returns its index. */
+    private int awaitLeader(int[] ports, List<String> peers, String excluded) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (System.nanoTime() < deadline) {
+            Object agreed = null;
+            boolean allAgree = true;
+            for (int port : ports) {
+                Object leader = get(port, "/api/replication").get("leader");
+                if (leader == null || leader.equals(excluded) || (agreed != null && !agreed.equals(leader))) {
+                    allAgree = false;
+                    break;
+                }
+                agreed = leader;
+            }
+            if (allAgree && peers.contains(agreed)) {
+                return peers.indexOf(agreed);
+            }
+            Thread.sleep(20);
+        }
+        throw new IllegalStateException("Nodes did not agree on a leader within 60s");
+    }
+
+    private void awaitHealthy(int port) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        while (System.nanoTime() < deadline) {
+            if (!get(port, "/api/health").isEmpty()) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("Node on port " + port + " not healthy after 120s");
+    }
+
+    private boolean execute(int port, String action) {
+        try {
+            String body = mapper.writeValueAsString(Map.of("device", DEVICE, "action", action));
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/execute"))
+                .timeout(Duration.ofSeconds(5))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+            return http.send(request, HttpResponse.BodyHandlers.ofString()).statusCode() == 200;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> get(int port, String path) {
+        try {
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path))
+                .timeout(Duration.ofSeconds(5))
+                .build();
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            return (response.statusCode() == 200) ? mapper.readValue(response.body(), Map.class) : Collections.emptyMap();
+        } catch (IOException e) {
+            return Collections.emptyMap();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyMap();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Map<String, Object> summarize(List<Long> samples) {
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("samples", sorted.size());
+        summary.put("p50", sorted.get(sorted.size() / 2));
+        summary.put("p90", sorted.get((int) (sorted.size() * 0.9)));
+        summary.put("p99", sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * 0.99))));
+        summary.put("max", sorted.get(sorted.size() - 1));
+        return summary;
+    }
+}
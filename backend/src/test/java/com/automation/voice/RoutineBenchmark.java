@@ -0,0 +1,130 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Routine Benchmark for the Voice Automation Hub backend
+ *
+ * Measures, in-process and on one thread, what running a routine costs per step:
+ *   commands   every step executed on its own through the visitor, resolving the device and
+ *              parsing the parameter each time (what a routine cost before it was compiled)
+ *   routine    the routine run from its cached compiled program
+ *   compile    compiling the routine into a program, which happens once per definition change
+ * Every executed step still writes the device state and a history record, as in production.
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.RoutineBenchmark --duration=5
+ *
+ * Options: --duration=5 (seconds per mode), --steps=12, --out=file.json
+ * Allocation is per-thread allocated bytes, reported where the JVM supports it.
+ */
+public class RoutineBenchmark {
+
+    private static final String[][] STEPS = {
+        {"living room light", "ON", null}, {"living room light", "DIM", "a bit"}, {"bedroom light", "SET", "40"},
+        {"thermostat", "SET", "70"}, {"thermostat", "INCREASE", null}, {"fan", "ON", null},
+        {"kitchen light", "BRIGHTEN", null}, {"door lock", "LOCK", null}, {"thermostat", "DECREASE", null},
+        {"fan", "OFF", null}, {"bedroom light", "DECREASE", null}, {"living room light", "OFF", null},
+    };
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final App.CommandExecutorVisitor executor = new App.CommandExecutorVisitor();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final App.RoutineCommand routine = new App.RoutineCommand("benchmark");
+    private int sink = 0;
+
+    RoutineBenchmark(int steps) {
+        for (int i = 0; i < steps; i++) {
+            String[] step = STEPS[i % STEPS.length];
+            routine.addStep(new App.DeviceCommandExpression(step[0], step[1], step[2]));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "5")));
+        int steps = Integer.parseInt(options.getOrDefault("steps", "12"));
+
+        RoutineBenchmark benchmark = new RoutineBenchmark(steps);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("steps", steps);
+        Map<String, Object> modes = new LinkedHashMap<>();
+        modes.put("commands", benchmark.measure(benchmark::commands, steps, durationNanos));
+        modes.put("routine", benchmark.measure(benchmark::routine, steps, durationNanos));
+        modes.put("compile", benchmark.measure(benchmark::compile, steps, durationNanos));
+        report.put("modes", modes);
+
+        if (options.containsKey("out")) {
+            benchmark.mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Routine report written to " + options.get("out"));
+        } else {
+            System.out.println(benchmark.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+    }
+
+    private void commands() {
+        List<App.CommandExpression> steps = routine.getSteps();
+        for (App.CommandExpression step : steps) {
+            sink += executor.visit((App.DeviceCommandExpression) step).message.length();
+        }
+    }
+
+    private void routine() {
+        sink += executor.visit(routine).message.length();
+    }
+
+    private void compile() {
+        sink += App.CommandProgram.compile(routine).instructions.length;
+    }
+
+    private Map<String, Object> measure(Runnable mode, int steps, long durationNanos) {
+        run(mode, TimeUnit.SECONDS.toNanos(1)); // warm-up
+        long allocatedBefore = allocatedBytes();
+        long started = System.nanoTime();
+        long runs = run(mode, durationNanos);
+        long elapsed = System.nanoTime() - started;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("routinesPerSecond", Math.round(runs / (elapsed / 1e9)));
+        result.put("nanosPerStep", Math.round(10.0 * elapsed / runs / steps) / 10.0);
+        result.put("allocatedBytesPerStep", (allocatedBefore >= 0) ? allocated / runs / steps : null);
+        if (sink == 42) {
+            System.out.print(""); // keeps the results live
+        }
+        return result;
+    }
+
+    private long run(Runnable mode, long durationNanos) {
+        long runs = 0;
+        long started = System.nanoTime();
+        while (System.nanoTime() - started < durationNanos) {
+            mode.run();
+            runs++;
+        }
+        return runs;
+    }
+
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,168 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Startup Benchmark for the Voice Automation Hub backend
+ *
+ * Launches the backend in a fresh JVM once per run and mode, and measures the time from process
+ * start to the first successful GET /api/health, plus the resident memory (RSS) at that moment.
+ * Modes:
+ *   default    full stack, including datasource, JPA/Hibernate and the H2 console
+ *   lean       --spring.profiles.active=lean
+ *   lean-cds   lean with the class-data-sharing archive from the "cds" Maven profile (if present)
+ *
+ * Usage (after "./mvnw package -Pcds"):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.StartupBenchmark --runs=5
+ *
+ * Options: --runs=5, --cds-archive=target/voice-hub.jsa,
+ * --app-classpath=target/voice-hub-1.0.jar:target/lib/* (what the app is started with), --out=file.json
+ * RSS is read from /proc and is reported as null on platforms without it.
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        Path archive = Paths.get(options.getOrDefault("cds-archive", "target/voice-hub.jsa"));
+        // The archive only applies to the classpath it was dumped with, not to this tool's own
+        String classpath = options.getOrDefault("app-classpath",
+            "target/voice-hub-1.0.jar" + File.pathSeparator + "target/lib/*");
+
+        Map<String, List<String>> modes = new LinkedHashMap<>();
+        modes.put("default", Collections.emptyList());
+        modes.put("lean", List.of("-Dspring.profiles.active=lean"));
+        if (Files.exists(archive)) {
+            modes.put("lean-cds", List.of("-XX:SharedArchiveFile=" + archive, "-Dspring.profiles.active=lean"));
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", LocalDateTime.now().toString());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("runs", runs);
+        Map<String, Object> results = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> mode : modes.entrySet()) {
+            List<Long> startupMillis = new ArrayList<>();
+            List<Long> rssKb = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                long[] sample = measure(classpath, mode.getValue());
+                startupMillis.add(sample[0]);
+                if (sample[1] >= 0) rssKb.add(sample[1]);
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("timeToHealthyMillis", summarize(startupMillis));
+            result.put("residentMemoryKb", rssKb.isEmpty() ? null : summarize(rssKb));
+            results.put(mode.getKey(), result);
+        }
+        report.put("modes", results);
+
+        ObjectMapper mapper = new ObjectMapper();
+        if (options.containsKey("out")) {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Startup report written to " + options.get("out"));
+        } else {
+            System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+    }
+
+    /** Returns {milliseconds until healthy, RSS in KB or -1}. */
+    private static long[] measure(String classpath, List<String> jvmArgs) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(classpath);
+        command.add(App.class.getName());
+        command.add("--server.port=" + port);
+
+        long started = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        try {
+            URL health = new URL("http://localhost:" + port + "/api/health");
+            while (true) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("Backend exited during startup: " + command);
+                }
+                if (isHealthy(health)) {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+                    return new long[] {millis, residentMemoryKb(process.pid())};
+                }
+                if (System.nanoTime() - started > TimeUnit.SECONDS.toNanos(120)) {
+                    throw new IllegalStateException("Backend not healthy after 120s: " + command);
+                }
+                Thread.sleep(10);
+            }
+        } finally {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private static boolean isHealthy(URL health) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) health.openConnection();
+            connection.setConnectTimeout(200);
+            connection.setReadTimeout(1000);
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            return status == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long residentMemoryKb(long pid) {
+        Path status = Paths.get("/proc", Long.toString(pid), "status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not available on this platform
+        }
+        return -1;
+    }
+
+    private static Map<String, Object> summarize(List<Long> samples) {
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("min", sorted.get(0));
+        summary.put("median", sorted.get(sorted.size() / 2));
+        summary.put("max", sorted.get(sorted.size() - 1));
+        return summary;
+    }
+}
@@ -0,0 +1,272 @@
+package com.automation.voice;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Wire Benchmark for the Voice Automation Hub backend
+ *
+ * Sends the same stream of device commands on localhost as fast as the server answers them, in
+ * two ways, and reports commands per second and latency from send to answer:
+ *   rest    POST /api/execute with a JSON body on --concurrency keep-alive connections, one
+ *           request in flight on each
+ *   wire    the binary protocol of {@link App.CommandWireServer} on one connection, --pipeline
+ *           commands in flight (devices beyond the six built-in ones are bound first)
+ * Commands cycle over --devices devices (ON/OFF, LOCK/UNLOCK, INCREASE/DECREASE). Each mode runs
+ * --warmup seconds unmeasured first. The app is started in-process with the coalescing window off,
+ * so both paths reach the device mailboxes at once, unless --url and --wire point at a running one.
+ *
+ * Usage (after "./mvnw package -Pcds", which also copies dependencies to target/lib):
+ *   java -cp "target/classes:target/test-classes:target/lib/*" com.automation.voice.WireBenchmark --duration=10
+ *
+ * Options: --duration=10 (seconds per mode), --warmup=3, --devices=50, --concurrency=64,
+ * --pipeline=256, --url=http://host:port, --wire=host:port, --out=file.json
+ */
+public class WireBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final String[] devices;
+    private final int concurrency;
+    private final int pipeline;
+
+    WireBenchmark(int devices, int concurrency, int pipeline) {
+        this.devices = Arrays.copyOf(App.CommandWireServer.DEVICES, Math.max(1, devices));
+        for (int i = App.CommandWireServer.DEVICES.length; i < this.devices.length; i++) {
+            this.devices[i] = "hub light " + i;
+        }
+        this.concurrency = concurrency;
+        this.pipeline = pipeline;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "10")));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "3")));
+        WireBenchmark benchmark = new WireBenchmark(
+            Integer.parseInt(options.getOrDefault("devices", "50")),
+            Integer.parseInt(options.getOrDefault("concurrency", "64")),
+            Integer.parseInt(options.getOrDefault("pipeline", "256")));
+
+        // Executed commands are logged by the visitor; keep the report readable
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ConfigurableApplicationContext context = null;
+        Map<String, Object> report = new LinkedHashMap<>();
+        try {
+            String url = options.get("url");
+            String wire = options.get("wire");
+            if (url == null || wire == null) {
+                context = SpringApplication.run(App.class, "--server.port=0", "--voicehub.wire.port=0",
+                    "--voicehub.coalesce.window-ms=0", "--voicehub.schedule.file=", "--logging.level.root=WARN");
+                url = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+                wire = "localhost:" + context.getBean(App.class).wireServer().port();
+            }
+            String host = wire.substring(0, wire.lastIndexOf(':'));
+            int port = Integer.parseInt(wire.substring(wire.lastIndexOf(':') + 1));
+
+            report.put("timestamp", LocalDateTime.now().toString());
+            report.put("javaVersion", System.getProperty("java.version"));
+            report.put("devices", benchmark.devices.length);
+            report.put("concurrency", benchmark.concurrency);
+            report.put("pipeline", benchmark.pipeline);
+            Map<String, Object> modes = new LinkedHashMap<>();
+            benchmark.rest(url, warmupNanos);
+            modes.put("rest", benchmark.rest(url, durationNanos));
+            benchmark.wire(host, port, warmupNanos);
+            modes.put("wire", benchmark.wire(host, port, durationNanos));
+            report.put("modes", modes);
+        } finally {
+            System.setOut(console);
+            if (context != null) {
+                context.close();
+            }
+        }
+
+        if (options.containsKey("out")) {
+            benchmark.mapper.writerWithDefaultPrettyPrinter().writeValue(new File(options.get("out")), report);
+            System.out.println("Wire report written to " + options.get("out"));
+        } else {
+            System.out.println(benchmark.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        }
+        System.exit(0); // the app's worker threads would keep the JVM alive
+    }
+
+    /** Action for the n-th command: each device toggles between its two actions. */
+    private static int actionCode(String device, long n) {
+        boolean first = (n / 2) % 2 == 0;
+        String action;
+        if (device.equals("door lock")) {
+            action = first ? "LOCK" : "UNLOCK";
+        } else if (device.equals("thermostat")) {
+            action = first ? "INCREASE" : "DECREASE";
+        } else {
+            action = first ? "ON" : "OFF";
+        }
+        return Arrays.asList(App.CommandWireServer.ACTIONS).indexOf(action) + 1;
+    }
+
+    private Map<String, Object> rest(String url, long durationNanos) throws Exception {
+        URI base = URI.create(url);
+        App.DeviceMailboxes.LatencyHistogram micros = new App.DeviceMailboxes.LatencyHistogram();
+        AtomicLong sequence = new AtomicLong();
+        AtomicLong completed = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+
+        long started = System.nanoTime();
+        long deadline = started + durationNanos;
+        Thread[] clients = new Thread[concurrency];
+        for (int c = 0; c < clients.length; c++) {
+            clients[c] = new Thread(() -> {
+                HttpConnection connection = new HttpConnection(base.getHost(), base.getPort());
+                try {
+                    while (System.nanoTime() < deadline) {
+                        long n = sequence.getAndIncrement();
+                        String device = devices[(int) (n % devices.length)];
+                        String body = "{\"device\":\"" + device + "\",\"action\":\""
+                            + App.CommandWireServer.ACTIONS[actionCode(device, n) - 1] + "\"}";
+                        long sent = System.nanoTime();
+                        int status = connection.post("/api/execute", body);
+                        micros.record((System.nanoTime() - sent) / 1000);
+                        completed.incrementAndGet();
+                        if (status >= 400) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    connection.close();
+                }
+            }, "rest-client-" + c);
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return result(completed.get(), errors.get(), System.nanoTime() - started, micros);
+    }
+
+    private Map<String, Object> wire(String host, int port, long durationNanos) throws Exception {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Semaphore window = new Semaphore(pipeline);
+            AtomicLongArray sentAt = new AtomicLongArray(1 << 16);
+            App.DeviceMailboxes.LatencyHistogram micros = new App.DeviceMailboxes.LatencyHistogram();
+            AtomicLong completed = new AtomicLong();
+            AtomicLong errors = new AtomicLong();
+
+            ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+            int correlation = 0;
+            for (int id = App.CommandWireServer.DEVICES.length + 1; id <= devices.length; id++) {
+                byte[] name = devices[id - 1].getBytes(StandardCharsets.UTF_8);
+                window.acquire();
+                sentAt.set(correlation & 0xFFFF, System.nanoTime());
+                out.putShort((short) (8 + name.length)).put(App.CommandWireServer.BIND)
+                    .putInt(correlation++).putShort((short) id).put((byte) name.length).put(name);
+            }
+            final int binds = correlation;
+            Thread reader = new Thread(() -> readReplies(channel, binds, window, sentAt, micros, completed, errors), "wire-reader");
+            reader.setDaemon(true);
+            reader.start();
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+
+            long started = System.nanoTime();
+            long deadline = started + durationNanos;
+            while (System.nanoTime() < deadline) {
+                if (!window.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                // Everything the window allows goes out in one write, as a hub forwarding a burst would
+                int batch = 1;
+                while (batch < 64 && window.tryAcquire()) {
+                    batch++;
+                }
+                for (int i = 0; i < batch; i++, correlation++) {
+                    int device = (correlation - binds) % devices.length;
+                    sentAt.set(correlation & 0xFFFF, System.nanoTime());
+                    out.putShort((short) 17).put(App.CommandWireServer.EXECUTE)
+                        .putInt(correlation)
+                        .putShort((short) (device + 1))
+                        .put((byte) actionCode(devices[device], correlation - binds))
+                        .putLong(App.DeviceState.ANY_VERSION)
+                        .put((byte) 0);
+                }
+                out.flip();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                out.clear();
+            }
+            window.tryAcquire(pipeline, 30, TimeUnit.SECONDS);
+            return result(completed.get() - binds, errors.get(), System.nanoTime() - started, micros);
+        }
+    }
+
+    private static void readReplies(SocketChannel channel, int binds, Semaphore window, AtomicLongArray sentAt,
+                                    App.DeviceMailboxes.LatencyHistogram micros, AtomicLong completed, AtomicLong errors) {
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                while (in.remaining() >= 2 && in.remaining() >= 2 + (in.getShort(in.position()) & 0xFFFF)) {
+                    int end = in.position() + 2 + (in.getShort() & 0xFFFF);
+                    in.get(); // RESULT
+                    int correlation = in.getInt();
+                    int status = in.get();
+                    if (correlation >= binds) {
+                        micros.record((System.nanoTime() - sentAt.get(correlation & 0xFFFF)) / 1000);
+                    }
+                    completed.incrementAndGet();
+                    if (status != App.CommandWireServer.OK) {
+                        errors.incrementAndGet();
+                    }
+                    in.position(end);
+                    window.release();
+                }
+                in.compact();
+            }
+        } catch (IOException e) {
+            // connection closed at the end of the run
+        }
+    }
+
+    private static Map<String, Object> result(long completed, long errors, long elapsedNanos,
+                                              App.DeviceMailboxes.LatencyHistogram micros) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("commands", completed);
+        result.put("errors", errors);
+        result.put("commandsPerSecond", Math.round(completed / (elapsedNanos / 1e9)));
+        result.put("latencyMicros", micros.summary());
+        return result;
+    }
+}
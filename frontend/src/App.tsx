@@ -16,6 +16,11 @@ if (API_URL) {
   axios.defaults.baseURL = '';
 }
 
+// A stable id per browser lets the backend learn which light "the light" means for this user
+const USER_ID = localStorage.getItem('userId') || `user-${Math.random().toString(36).slice(2, 10)}`;
+localStorage.setItem('userId', USER_ID);
+axios.defaults.headers.common['X-User-Id'] = USER_ID;
+
 function App() {
   const [tab, setTab] = useState('voice');
   const [command, setCommand] = useState('');